@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2008 - 2013 10gen, Inc. <http://10gen.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package course;
+
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * A local disk cache of attachment content, bounded by the total number of bytes it holds.  Least recently used
+ * files are evicted first.
+ * <p/>
+ * Files are copied in on a background thread, at most one copy per attachment at a time.  The bytes a copy will
+ * take are reserved when it starts, so copies in progress count against the bound as well.
+ * <p/>
+ * Channels are always opened while holding the cache lock, so an eviction can only unlink a file that a reader
+ * already has open, and that reader keeps seeing the full content.
+ */
+public class AttachmentCache {
+    // cached files are named after the attachment id, copies in progress end in .part
+    private static final Pattern OWN_FILE = Pattern.compile("[0-9a-f]{24}|[0-9a-f]{24}.*\\.part");
+
+    private final Path directory;
+    private final long maxBytes;
+    // file sizes by attachment id, in access order
+    private final LinkedHashMap<ObjectId, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<ObjectId> filling = new HashSet<>();
+    private final Executor filler;
+    private final boolean ownsDirectory;
+    private long totalBytes;
+    private long reservedBytes;
+    private boolean closed;
+
+    public AttachmentCache(Path directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, newFiller(), false);
+    }
+
+    AttachmentCache(Path directory, long maxBytes, Executor filler, boolean ownsDirectory) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.filler = filler;
+        this.ownsDirectory = ownsDirectory;
+
+        // files left over from a previous run are not accounted for, so start empty
+        Files.createDirectories(directory);
+        clear();
+    }
+
+    // a cache in a fresh private directory, which is removed again on close
+    public static AttachmentCache createTemporary(long maxBytes) throws IOException {
+        return new AttachmentCache(Files.createTempDirectory("mongoblog-attachments"), maxBytes, newFiller(), true);
+    }
+
+    private static ExecutorService newFiller() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "attachment-cache-fill");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // stops the background copies before removing the cached files, so no copy can publish a file afterwards,
+    // then removes the directory as well if the cache created it
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        if (filler instanceof ExecutorService) {
+            ExecutorService service = (ExecutorService) filler;
+            service.shutdown();
+            try {
+                service.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        clear();
+        if (ownsDirectory) {
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    // deletes the files this cache created, leaving anything else in the directory alone
+    public synchronized void clear() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (OWN_FILE.matcher(file.getFileName().toString()).matches() && Files.isRegularFile(file)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    // a single file may take at most a quarter of the cache, so one large download can't flush everything else
+    public boolean admits(long length) {
+        return length <= maxBytes / 4;
+    }
+
+    // opens the cached copy of the attachment, or returns null on a miss
+    public synchronized FileChannel open(ObjectId id) throws IOException {
+        if (entries.get(id) == null) {
+            return null;
+        }
+        return FileChannel.open(pathFor(id), StandardOpenOption.READ);
+    }
+
+    // starts copying the attachment into the cache, unless it is already there, already being copied or too large
+    public void fill(ObjectId id, long length, Supplier<InputStream> content) {
+        synchronized (this) {
+            if (closed || !admits(length) || entries.containsKey(id) || filling.contains(id)
+                    || reservedBytes + length > maxBytes) {
+                return;
+            }
+            try {
+                evict(length);
+            } catch (IOException e) {
+                System.out.println("Attachment cache eviction failed: " + e.getMessage());
+                return;
+            }
+            filling.add(id);
+            reservedBytes += length;
+        }
+        filler.execute(() -> copy(id, length, content));
+    }
+
+    private void copy(ObjectId id, long length, Supplier<InputStream> content) {
+        Path temp = null;
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            temp = Files.createTempFile(directory, id.toHexString(), ".part");
+            long copied;
+            try (InputStream in = content.get()) {
+                copied = Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            synchronized (this) {
+                if (copied == length && !closed) {
+                    Files.move(temp, pathFor(id), StandardCopyOption.REPLACE_EXISTING);
+                    entries.put(id, length);
+                    totalBytes += length;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Attachment " + id + " not cached: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                filling.remove(id);
+                reservedBytes -= length;
+            }
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    System.out.println("Attachment cache copy not removed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // drops least recently used files until there is room for another incoming bytes
+    private void evict(long incoming) throws IOException {
+        Iterator<Map.Entry<ObjectId, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes + reservedBytes + incoming > maxBytes && eldest.hasNext()) {
+            Map.Entry<ObjectId, Long> entry = eldest.next();
+            eldest.remove();
+            totalBytes -= entry.getValue();
+            Files.deleteIfExists(pathFor(entry.getKey()));
+        }
+    }
+
+    private Path pathFor(ObjectId id) {
+        return directory.resolve(id.toHexString());
+    }
+}
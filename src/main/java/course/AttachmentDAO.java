@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2008 - 2013 10gen, Inc. <http://10gen.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package course;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.io.InputStream;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * Stores post attachments in the "attachments" GridFS bucket.  Content always moves through streams, so neither
+ * uploads nor downloads hold a whole file in memory.
+ */
+public class AttachmentDAO {
+    public static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final GridFSBucket attachmentsBucket;
+
+    public AttachmentDAO(final MongoDatabase blogDatabase) {
+        attachmentsBucket = GridFSBuckets.create(blogDatabase, "attachments");
+    }
+
+    // streams the content into GridFS and returns the id of the new file
+    public ObjectId addAttachment(String filename, String contentType, InputStream content) {
+        GridFSUploadOptions options = new GridFSUploadOptions()
+                .metadata(new Document("contentType", contentType));
+
+        return attachmentsBucket.uploadFromStream(filename, content, options);
+    }
+
+    public GridFSFile findById(ObjectId id) {
+        return attachmentsBucket.find(eq("_id", id)).first();
+    }
+
+    // opens a stream over the chunks of the file, fetching them one at a time
+    public GridFSDownloadStream openDownloadStream(ObjectId id) {
+        return attachmentsBucket.openDownloadStream(id);
+    }
+
+    public void removeAttachment(ObjectId id) {
+        attachmentsBucket.delete(id);
+    }
+
+    public static String getContentType(GridFSFile file) {
+        Document metadata = file.getMetadata();
+        if (metadata == null || metadata.getString("contentType") == null) {
+            return DEFAULT_CONTENT_TYPE;
+        }
+        return metadata.getString("contentType");
+    }
+}
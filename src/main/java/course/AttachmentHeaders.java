@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2008 - 2013 10gen, Inc. <http://10gen.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package course;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The HTTP header decisions made when serving attachments, kept apart from the routes so they can be tested alone.
+ */
+final class AttachmentHeaders {
+    // raster images only: anything able to carry script, such as SVG or HTML, is always downloaded
+    private static final Set<String> INLINE_TYPES = new HashSet<>(Arrays.asList(
+            "image/png", "image/jpeg", "image/gif", "image/webp"));
+    // characters allowed unencoded in an RFC 5987 ext-value besides letters and digits
+    private static final String ATTR_CHARS = "!#$&+-.^_`|~";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private AttachmentHeaders() {
+    }
+
+    // whether the uploaded content type is safe to show inside the blog
+    static boolean isInlineType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int parameters = contentType.indexOf(';');
+        String mediaType = parameters < 0 ? contentType : contentType.substring(0, parameters);
+        return INLINE_TYPES.contains(mediaType.trim().toLowerCase(Locale.ROOT));
+    }
+
+    // a Content-Disposition that downloads the file under its original name, with a plain ASCII fallback for
+    // clients that don't understand the RFC 5987 filename* parameter
+    static String attachmentDisposition(String filename) {
+        StringBuilder fallback = new StringBuilder();
+        StringBuilder encoded = new StringBuilder();
+        for (char c : filename.toCharArray()) {
+            fallback.append(c >= 0x20 && c < 0x7f && c != '"' && c != '\\' ? c : '_');
+        }
+        for (byte b : filename.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || ATTR_CHARS.indexOf(c) >= 0) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+            }
+        }
+        return "attachment; filename=\"" + fallback + "\"; filename*=UTF-8''" + encoded;
+    }
+
+    // parses a single "bytes=" range against the file length.  Returns null when the whole file should be sent,
+    // which includes headers we don't understand, and an empty array when the range can't be satisfied.
+    static long[] parseRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                // "-n" asks for the last n bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix < 0) {
+                    // a malformed suffix such as "--5"
+                    return null;
+                }
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                if (end < start) {
+                    return null;
+                }
+                end = Math.min(end, length - 1);
+            }
+            if (start >= length) {
+                return new long[0];
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
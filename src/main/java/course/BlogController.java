@@ -20,14 +20,27 @@ package course;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
 import org.apache.commons.text.StringEscapeUtils;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import spark.ModelAndView;
 import spark.Request;
 import spark.template.freemarker.FreeMarkerEngine;
 
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
+import javax.servlet.http.Part;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -43,12 +56,21 @@ import static spark.Spark.post;
  * It is also the entry point into the web application.
  */
 public class BlogController {
+    private static final long MAX_ATTACHMENT_BYTES = 16L * 1024 * 1024;
+    private static final long MAX_NEWPOST_BYTES = 4 * MAX_ATTACHMENT_BYTES;
+    private static final int ATTACHMENT_SPOOL_THRESHOLD = 64 * 1024;
+    private static final int COPY_BUFFER_SIZE = 8192;
+
     private final BlogPostDAO blogPostDAO;
     private final UserDAO userDAO;
     private final SessionDAO sessionDAO;
+    private final AttachmentDAO attachmentDAO;
+    private final AttachmentCache attachmentCache;
+    private final ViewCounter viewCounter;
+    private final MultipartConfigElement attachmentUploadConfig;
     private final FreeMarkerEngine freeMarkerEngine;
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
         if (args.length == 0) {
             new BlogController("mongodb://mongo:27017");
@@ -57,13 +79,38 @@ public class BlogController {
         }
     }
 
-    public BlogController(String mongoURIString) {
+    public BlogController(String mongoURIString) throws IOException {
         MongoClient mongoClient = new MongoClient(new MongoClientURI(mongoURIString));
         MongoDatabase blogDatabase = mongoClient.getDatabase("blog");
 
         blogPostDAO = new BlogPostDAO(blogDatabase);
         userDAO = new UserDAO(blogDatabase);
         sessionDAO = new SessionDAO(blogDatabase);
+        attachmentDAO = new AttachmentDAO(blogDatabase);
+
+        String tempDirectory = System.getProperty("java.io.tmpdir");
+        String cacheDirectory = System.getProperty("attachment.cache.dir");
+        long cacheBytes = Long.getLong("attachment.cache.maxBytes", 256L * 1024 * 1024);
+        // without a configured directory the cache gets a fresh one only this process can read
+        attachmentCache = cacheDirectory != null
+                ? new AttachmentCache(Paths.get(cacheDirectory), cacheBytes)
+                : AttachmentCache.createTemporary(cacheBytes);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                attachmentCache.close();
+            } catch (IOException e) {
+                System.out.println("Attachment cache not cleared: " + e.getMessage());
+            }
+        }));
+        // uploads above the threshold are spooled to disk by the servlet container instead of kept on the heap
+        attachmentUploadConfig = new MultipartConfigElement(
+                tempDirectory, MAX_ATTACHMENT_BYTES, MAX_NEWPOST_BYTES, ATTACHMENT_SPOOL_THRESHOLD);
+        // views are written in batches, so a crash loses at most one flush interval of them
+        viewCounter = new ViewCounter(blogPostDAO,
+                Long.getLong("views.flushIntervalMillis", 5000),
+                Long.getLong("popular.halfLifeMillis", 60 * 60 * 1000),
+                Integer.getInteger("popular.size", 10));
+        Runtime.getRuntime().addShutdownHook(new Thread(viewCounter::close));
         freeMarkerEngine = new FreeMarkerEngine();
 
         initializeRoutes();
@@ -92,6 +139,7 @@ public class BlogController {
                 response.redirect("/post_not_found");
                 return "";
             } else {
+                viewCounter.recordView(permalink);
                 // empty comment to hold new comment in form at bottom of blog entry detail page
                 Map<String, Object> newComment = new HashMap<>();
                 newComment.put("name", "");
@@ -166,14 +214,32 @@ public class BlogController {
 
         // handle the new post submission
         post("/newpost", (request, response) -> {
-            String title = StringEscapeUtils.escapeHtml4(request.queryParams("subject"));
-            String post = StringEscapeUtils.escapeHtml4(request.queryParams("body"));
-            String tags = StringEscapeUtils.escapeHtml4(request.queryParams("tags"));
+            // the form is multipart so it can carry attachments; this must be set before reading any parameter
+            request.attribute("org.eclipse.jetty.multipartConfig", attachmentUploadConfig);
+            // the session comes from a cookie, so it can be checked before the form is parsed
             String username = sessionDAO.findUserNameBySessionId(getSessionCookie(request));
             if (username == null) {
                 response.redirect("/login");    // only logged in users can post to blog
                 return "";
-            } else if (title.equals("") || post.equals("")) {
+            }
+            String title;
+            String post;
+            String tags;
+            try {
+                title = StringEscapeUtils.escapeHtml4(request.queryParams("subject"));
+                post = StringEscapeUtils.escapeHtml4(request.queryParams("body"));
+                tags = StringEscapeUtils.escapeHtml4(request.queryParams("tags"));
+            } catch (IllegalStateException e) {
+                // jetty refuses the whole form when an upload is over the size limits, text fields included
+                Map<String, String> root = new HashMap<>();
+                root.put("errors", "the upload was rejected because attachments must be at most "
+                        + MAX_ATTACHMENT_BYTES / (1024 * 1024) + " MB each and "
+                        + MAX_NEWPOST_BYTES / (1024 * 1024) + " MB in total. "
+                        + "The title, entry and tags were lost with it, please enter them again.");
+                root.put("username", username);
+                return freeMarkerEngine.render(new ModelAndView(root, "newpost_template.ftl"));
+            }
+            if (title.equals("") || post.equals("")) {
                 // redisplay page with errors
                 Map<String, String> root = new HashMap<>();
                 root.put("errors", "post must contain a title and blog entry.");
@@ -187,13 +253,62 @@ public class BlogController {
                 List<String> tagsArray = extractTags(tags);
                 // substitute some <p> for the paragraph breaks
                 post = post.replaceAll("\\r?\\n", "<p>");
-                String permalink = blogPostDAO.addPost(title, post, tagsArray, username);
+                List<Document> attachments = storeAttachments(request);
+                String permalink = blogPostDAO.addPost(title, post, tagsArray, attachments, username);
+                if (permalink == null) {
+                    // don't leave files behind that no post refers to
+                    removeAttachments(attachments);
+                    response.redirect("/internal_error");
+                    return "";
+                }
                 // now redirect to the blog permalink
                 response.redirect("/post/" + permalink);
                 return "";
             }
         });
 
+        // streams an attachment, honouring a single byte range so downloads can be resumed and media seeked
+        get("/attachment/:id", (request, response) -> {
+            String id = request.params(":id");
+            GridFSFile file = ObjectId.isValid(id) ? attachmentDAO.findById(new ObjectId(id)) : null;
+            if (file == null) {
+                response.status(404);
+                return "";
+            }
+
+            long length = file.getLength();
+            long[] range = AttachmentHeaders.parseRange(request.headers("Range"), length);
+            response.header("Accept-Ranges", "bytes");
+            if (range != null && range.length == 0) {
+                response.status(416);
+                response.header("Content-Range", "bytes */" + length);
+                return "";
+            }
+            long start = range != null ? range[0] : 0;
+            long end = range != null ? range[1] : length - 1;
+            if (range != null) {
+                response.status(206);
+                response.header("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+
+            String contentType = AttachmentDAO.getContentType(file);
+            response.header("X-Content-Type-Options", "nosniff");
+            // even if a browser ends up rendering the file, it gets no script and no access to the blog's origin
+            response.header("Content-Security-Policy", "default-src 'none'; sandbox");
+            // attachments never change once stored
+            response.header("Cache-Control", "public, max-age=86400");
+            if (AttachmentHeaders.isInlineType(contentType)) {
+                response.type(contentType);
+            } else {
+                // the uploader chose the content type, so anything but a plain image is only ever downloaded
+                response.type(AttachmentDAO.DEFAULT_CONTENT_TYPE);
+                response.header("Content-Disposition", AttachmentHeaders.attachmentDisposition(file.getFilename()));
+            }
+            response.raw().setContentLengthLong(end - start + 1);
+            writeAttachment(file, start, end - start + 1, response.raw().getOutputStream());
+            return "";
+        });
+
         // will present welcome page
         get("/welcome", (request, response) -> {
             String cookie = getSessionCookie(request);
@@ -292,6 +407,18 @@ public class BlogController {
             return new ModelAndView(root, "blog_template.ftl");
         }, freeMarkerEngine);
 
+        // show the posts with the most views lately
+        get("/popular", (request, response) -> {
+            String username = sessionDAO.findUserNameBySessionId(getSessionCookie(request));
+            Map<String, Object> root = new HashMap<>();
+            List<Document> posts = blogPostDAO.findByPermalinks(viewCounter.getPopularPermalinks());
+            root.put("myposts", posts);
+            if (username != null) {
+                root.put("username", username);
+            }
+            return new ModelAndView(root, "popular_template.ftl");
+        }, freeMarkerEngine);
+
         // tells the user that the URL is dead
         get("/post_not_found", (request, response) -> {
             Map<String, Object> root = new HashMap<>();
@@ -350,6 +477,93 @@ public class BlogController {
         return null;
     }
 
+    // streams every uploaded file into GridFS and returns the summaries kept in the post.  GridFS keeps the name as
+    // it was submitted; only the copy in the post, which the templates render, is escaped.
+    private List<Document> storeAttachments(final Request request) throws IOException, ServletException {
+        List<Document> attachments = new ArrayList<>();
+        try {
+            for (Part part : request.raw().getParts()) {
+                if (!part.getName().equals("attachments") || part.getSubmittedFileName() == null
+                        || part.getSize() == 0) {
+                    continue;
+                }
+                String filename = part.getSubmittedFileName();
+                String contentType = part.getContentType() != null
+                        ? part.getContentType() : AttachmentDAO.DEFAULT_CONTENT_TYPE;
+                try (InputStream content = part.getInputStream()) {
+                    ObjectId id = attachmentDAO.addAttachment(filename, contentType, content);
+                    attachments.add(new Document("_id", id)
+                                    .append("filename", StringEscapeUtils.escapeHtml4(filename))
+                                    .append("contentType", contentType)
+                                    .append("inline", AttachmentHeaders.isInlineType(contentType))
+                                    .append("length", part.getSize()));
+                } finally {
+                    part.delete();
+                }
+            }
+        } catch (IOException | ServletException | RuntimeException e) {
+            // the post won't be created, so drop the files stored before the failure
+            removeAttachments(attachments);
+            throw e;
+        }
+        return attachments;
+    }
+
+    private void removeAttachments(List<Document> attachments) {
+        for (Document attachment : attachments) {
+            attachmentDAO.removeAttachment(attachment.getObjectId("_id"));
+        }
+    }
+
+    // writes count bytes of the attachment starting at start.  Cached files are served from disk with
+    // FileChannel.transferTo; on a miss the range is copied straight from its GridFS chunks while the cache is
+    // filled in the background.
+    private void writeAttachment(GridFSFile file, long start, long count, OutputStream out) throws IOException {
+        ObjectId id = file.getObjectId();
+        FileChannel cached = attachmentCache.open(id);
+        if (cached == null) {
+            attachmentCache.fill(id, file.getLength(), () -> attachmentDAO.openDownloadStream(id));
+        }
+
+        if (cached != null) {
+            try (FileChannel channel = cached) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = start;
+                long remaining = count;
+                while (remaining > 0) {
+                    long written = channel.transferTo(position, remaining, target);
+                    if (written <= 0) {
+                        throw new EOFException("cached attachment " + id + " is shorter than expected");
+                    }
+                    position += written;
+                    remaining -= written;
+                }
+            }
+        } else {
+            try (GridFSDownloadStream content = attachmentDAO.openDownloadStream(id)) {
+                // skipping moves straight to the chunk holding the first byte instead of reading up to it
+                long toSkip = start;
+                while (toSkip > 0) {
+                    long skipped = content.skip(toSkip);
+                    if (skipped <= 0) {
+                        throw new EOFException("attachment " + id + " is shorter than expected");
+                    }
+                    toSkip -= skipped;
+                }
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                long remaining = count;
+                while (remaining > 0) {
+                    int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("attachment " + id + " is shorter than expected");
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+    }
+
     // tags the tags string and put it into an array
     private ArrayList<String> extractTags(String tags) {
         // probably more efficient ways to do this.
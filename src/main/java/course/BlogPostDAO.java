@@ -17,24 +17,44 @@
 
 package course;
 
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
 import org.bson.Document;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.exclude;
+import static com.mongodb.client.model.Projections.include;
 import static com.mongodb.client.model.Sorts.descending;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
 import static com.mongodb.client.model.Updates.push;
+import static com.mongodb.client.model.Updates.set;
 
 public class BlogPostDAO {
     MongoCollection<Document> postsCollection;
 
     public BlogPostDAO(final MongoDatabase blogDatabase) {
-        postsCollection = blogDatabase.getCollection("posts");
+        this(blogDatabase.getCollection("posts"));
+    }
+
+    BlogPostDAO(final MongoCollection<Document> postsCollection) {
+        this.postsCollection = postsCollection;
     }
 
     public Document findByPermalink(String permalink) {
@@ -59,7 +79,33 @@ public class BlogPostDAO {
                 .into(new ArrayList<>());
     }
 
-    public String addPost(String title, String body, List tags, String username) {
+    // returns the posts in the order of the given permalinks, leaving out the ones that don't exist
+    public List<Document> findByPermalinks(List<String> permalinks) {
+        Map<String, Document> postsByPermalink = new HashMap<>();
+        for (Document post : postsCollection
+                .find(in("permalink", permalinks))
+                .projection(exclude("body", "comments"))) {
+            postsByPermalink.put(post.getString("permalink"), post);
+        }
+
+        List<Document> posts = new ArrayList<>();
+        for (String permalink : permalinks) {
+            if (postsByPermalink.containsKey(permalink)) {
+                posts.add(postsByPermalink.get(permalink));
+            }
+        }
+        return posts;
+    }
+
+    // only the permalink and stored popularity of the posts whose popularity was updated since the given date
+    public List<Document> findPopularSince(Date since) {
+        return postsCollection
+                .find(gte("popularityAt", since))
+                .projection(include("permalink", "popularity", "popularityAt"))
+                .into(new ArrayList<>());
+    }
+
+    public String addPost(String title, String body, List tags, List<Document> attachments, String username) {
         try {
             String permalink = title.replaceAll("\\s", "_"); // whitespace becomes _
             permalink = permalink.replaceAll("\\W", ""); // get rid of non alphanumeric
@@ -70,6 +116,7 @@ public class BlogPostDAO {
                             .append("body", body)
                             .append("permalink", permalink)
                             .append("tags", tags)
+                            .append("attachments", attachments)
                             .append("comments", new ArrayList<>())
                             .append("date", new Date());
 
@@ -91,4 +138,29 @@ public class BlogPostDAO {
         postsCollection.updateOne(eq("permalink", permalink), push("comments", comment));
     }
 
+    // adds the view counts of many posts in one round trip, together with each post's popularity score as of
+    // popularityAt; the updates are independent, so they run unordered.
+    // Returns the permalinks whose update failed, every other increment has been applied.
+    public Set<String> incrementViews(Map<String, Long> views, Map<String, Double> popularity, Date popularityAt) {
+        List<String> permalinks = new ArrayList<>();
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : views.entrySet()) {
+            permalinks.add(entry.getKey());
+            updates.add(new UpdateOneModel<>(eq("permalink", entry.getKey()), combine(
+                    inc("views", entry.getValue()),
+                    set("popularity", popularity.get(entry.getKey())),
+                    set("popularityAt", popularityAt))));
+        }
+
+        Set<String> failed = new HashSet<>();
+        try {
+            postsCollection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                failed.add(permalinks.get(error.getIndex()));
+            }
+        }
+        return failed;
+    }
+
 }
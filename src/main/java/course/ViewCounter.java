@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2008 - 2013 10gen, Inc. <http://10gen.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package course;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts post views in memory and writes them to MongoDB in batches, so reading a post doesn't cost a write.
+ * <p/>
+ * Every flush sends the views counted since the previous one as a single unordered bulk write, then folds them
+ * into a popularity score that halves every half-life and ranks the top posts.  Each post's score is written
+ * with its views, along with when it was computed, so after a restart the ranking resumes from the stored
+ * scores decayed to the present.
+ * <p/>
+ * Views that can't be written stay pending and are retried on every flush until they are, so only a crash loses
+ * views: at most those recorded within one flush interval.
+ */
+public class ViewCounter {
+    // after this many half-lives a stored score is too small to matter, so it isn't reloaded
+    private static final int SEED_HALF_LIVES = 20;
+
+    private final BlogPostDAO blogPostDAO;
+    private final long halfLifeMillis;
+    private final int popularSize;
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private long lastFlush;
+    private volatile List<String> popular = Collections.emptyList();
+
+    public ViewCounter(BlogPostDAO blogPostDAO, long flushIntervalMillis, long halfLifeMillis, int popularSize) {
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("flush interval must be positive: " + flushIntervalMillis);
+        }
+        if (halfLifeMillis <= 0) {
+            throw new IllegalArgumentException("half-life must be positive: " + halfLifeMillis);
+        }
+        if (popularSize < 0) {
+            throw new IllegalArgumentException("popular size must not be negative: " + popularSize);
+        }
+        this.blogPostDAO = blogPostDAO;
+        this.halfLifeMillis = halfLifeMillis;
+        this.popularSize = popularSize;
+        lastFlush = System.currentTimeMillis();
+        seed();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "view-counter-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // counts a view of the post; cheap enough for every request as the adder spreads contention over cells
+    public void recordView(String permalink) {
+        Counter counter = counters.get(permalink);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(permalink, key -> new Counter());
+        }
+        counter.views.increment();
+    }
+
+    // permalinks of the most popular posts as of the last flush, most popular first
+    public List<String> getPopularPermalinks() {
+        return popular;
+    }
+
+    // stops the periodic flush and writes out whatever is still pending
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // an exception would cancel the schedule
+            System.out.println("View counts not flushed: " + e.getMessage());
+        }
+    }
+
+    // reloads the scores stored by earlier flushes, decayed to now, so /popular survives a restart
+    private synchronized void seed() {
+        if (popularSize == 0) {
+            return;
+        }
+        long now = lastFlush;
+        long horizon = halfLifeMillis > now / SEED_HALF_LIVES ? 0 : now - SEED_HALF_LIVES * halfLifeMillis;
+        try {
+            for (Document post : blogPostDAO.findPopularSince(new Date(horizon))) {
+                Counter counter = new Counter();
+                long age = Math.max(0, now - post.getDate("popularityAt").getTime());
+                counter.score = ((Number) post.get("popularity")).doubleValue() * decay(age);
+                counters.put(post.getString("permalink"), counter);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Popular posts not loaded: " + e.getMessage());
+        }
+        rank(Collections.emptyMap(), 1);
+    }
+
+    synchronized void flush() {
+        // adders are never reset, so views recorded while we read them are simply picked up next time
+        Map<String, Long> pending = new HashMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            long delta = entry.getValue().views.sum() - entry.getValue().flushed;
+            if (delta > 0) {
+                pending.put(entry.getKey(), delta);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        double decay = decay(now - lastFlush);
+        lastFlush = now;
+        if (!pending.isEmpty()) {
+            // the score each post has once its views are in, stored with them for the next start
+            Map<String, Double> scores = new HashMap<>();
+            for (Map.Entry<String, Long> entry : pending.entrySet()) {
+                scores.put(entry.getKey(), counters.get(entry.getKey()).score * decay + entry.getValue());
+            }
+
+            Set<String> failed;
+            try {
+                failed = blogPostDAO.incrementViews(pending, scores, new Date(now));
+            } catch (RuntimeException e) {
+                System.out.println("View counts not flushed: " + e.getMessage());
+                failed = new HashSet<>(pending.keySet());
+            }
+            // the failed updates stay pending for the next flush; the others were applied and must not be sent again
+            pending.keySet().removeAll(failed);
+            for (Map.Entry<String, Long> written : pending.entrySet()) {
+                counters.get(written.getKey()).flushed += written.getValue();
+            }
+        }
+        rank(pending, decay);
+    }
+
+    private double decay(long elapsedMillis) {
+        return Math.pow(0.5, (double) elapsedMillis / halfLifeMillis);
+    }
+
+    // decays every score, adds the views just flushed and publishes the new top posts
+    private void rank(Map<String, Long> flushed, double decay) {
+        // min-heap holding the best popularSize posts seen so far
+        PriorityQueue<Map.Entry<String, Counter>> top = new PriorityQueue<>(popularSize + 1,
+                (a, b) -> Double.compare(a.getValue().score, b.getValue().score));
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            Long delta = flushed.get(entry.getKey());
+            counter.score *= decay;
+            if (delta != null) {
+                counter.score += delta;
+            }
+            top.add(entry);
+            if (top.size() > popularSize) {
+                top.poll();
+            }
+        }
+
+        List<String> ranking = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            ranking.add(top.poll().getKey());
+        }
+        Collections.reverse(ranking);
+        popular = Collections.unmodifiableList(ranking);
+    }
+
+    // one per post ever viewed; flushed and score are only touched while holding the ViewCounter lock
+    private static class Counter {
+        private final LongAdder views = new LongAdder();
+        private long flushed;
+        private double score;
+    }
+}
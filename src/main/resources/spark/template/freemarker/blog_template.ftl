@@ -12,6 +12,7 @@
 </#if>
 
 <h1>My Blog</h1>
+<a href="/popular">Popular Posts</a><br><br>
 
 <#list myposts as post>
     <h2><a href="/post/${post["permalink"]}">${post["title"]}</a></h2>
@@ -15,10 +15,20 @@
 <a href="/">Blog Home</a><br><br>
 
 <h2>${post["title"]}</h2>
-Posted ${post["date"]?datetime}<i> By ${post["author"]}</i><br>
+Posted ${post["date"]?datetime}<i> By ${post["author"]}</i>, ${post["views"]!0} views<br>
 <hr>
 ${post["body"]}
 <p>
+<#if post["attachments"]?? && (post["attachments"]?size > 0)>
+    <#list post["attachments"] as attachment>
+        <#if attachment["inline"]!false>
+            <img src="/attachment/${attachment["_id"]}" alt="${attachment["filename"]}"><br>
+        <#else>
+            <a href="/attachment/${attachment["_id"]}">${attachment["filename"]}</a> (${attachment["length"]} bytes)<br>
+        </#if>
+    </#list>
+<p>
+</#if>
     <em>Filed Under</em>:
     <#if post["tags"]??>
         <#list post["tags"] as tag>
@@ -9,7 +9,7 @@
 
     <p>
 </#if>
-<form action="/newpost" method="POST">
+<form action="/newpost" method="POST" enctype="multipart/form-data">
     ${errors!""}
     <h2>Title</h2>
     <input type="text" name="subject" size="120" value="${subject!""}"><br>
@@ -22,6 +22,10 @@
             Comma separated, please<br>
             <input type="text" name="tags" size="120" value="${tags!""}"><br>
 
+            <h2>Attachments</h2>
+            Images are shown in the post, other files are linked<br>
+            <input type="file" name="attachments" multiple><br>
+
             <p>
                 <input type="submit" value="Submit">
 
@@ -0,0 +1,30 @@
+<!DOCTYPE html>
+<html>
+<head>
+    <title>Popular Posts</title>
+</head>
+<body>
+
+<#if username??>
+    Welcome ${username} <a href="/logout">Logout</a> | <a href="/newpost">New Post</a>
+
+    <p>
+</#if>
+
+<a href="/">Blog Home</a><br><br>
+
+<h1>Popular Posts</h1>
+
+<#if (myposts?size == 0)>
+    Nothing has been read yet.
+</#if>
+<ol>
+    <#list myposts as post>
+        <li>
+            <a href="/post/${post["permalink"]}">${post["title"]}</a>
+            <i>By ${post["author"]}</i>, ${post["views"]!0} views
+        </li>
+    </#list>
+</ol>
+</body>
+</html>
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2008 - 2013 10gen, Inc. <http://10gen.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package course;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AttachmentCacheTest {
+    private Path directory;
+    private List<Runnable> queued;
+    private AttachmentCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("attachment-cache-test");
+        queued = new ArrayList<>();
+        cache = new AttachmentCache(directory, 400, queued::add, false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void missIsFilledInTheBackground() throws IOException {
+        ObjectId id = new ObjectId();
+        cache.fill(id, 3, () -> new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        assertNull(cache.open(id));
+
+        runQueued();
+        try (FileChannel channel = cache.open(id)) {
+            ByteBuffer content = ByteBuffer.allocate(3);
+            channel.read(content);
+            assertEquals(3, channel.size());
+            assertEquals(3, content.get(2));
+        }
+    }
+
+    @Test
+    public void concurrentMissesCopyOnce() {
+        ObjectId id = new ObjectId();
+        cache.fill(id, 10, () -> new ByteArrayInputStream(new byte[10]));
+        cache.fill(id, 10, () -> new ByteArrayInputStream(new byte[10]));
+        assertEquals(1, queued.size());
+    }
+
+    @Test
+    public void copiesInProgressCountAgainstTheLimit() {
+        for (int i = 0; i < 5; i++) {
+            cache.fill(new ObjectId(), 100, () -> new ByteArrayInputStream(new byte[100]));
+        }
+        assertEquals(4, queued.size());
+    }
+
+    @Test
+    public void tooLargeFilesAreNotCached() {
+        cache.fill(new ObjectId(), 101, () -> new ByteArrayInputStream(new byte[101]));
+        assertTrue(queued.isEmpty());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException {
+        ObjectId first = filled(100);
+        ObjectId second = filled(100);
+        ObjectId third = filled(100);
+        ObjectId fourth = filled(100);
+        cache.open(first).close();
+
+        ObjectId fifth = filled(100);
+        assertTrue(isCached(first));
+        assertFalse(isCached(second));
+        assertTrue(isCached(third));
+        assertTrue(isCached(fourth));
+        assertTrue(isCached(fifth));
+    }
+
+    @Test
+    public void onlyOwnFilesAreCleared() throws IOException {
+        Path foreign = Files.createFile(directory.resolve("notes.txt"));
+        Path subdirectory = Files.createDirectory(directory.resolve("nested"));
+        filled(10);
+
+        new AttachmentCache(directory, 400, queued::add, false);
+        assertTrue(Files.exists(foreign));
+        assertTrue(Files.exists(subdirectory));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void copiesFinishingAfterCloseAreNotKept() throws IOException {
+        ObjectId id = new ObjectId();
+        cache.fill(id, 10, () -> new ByteArrayInputStream(new byte[10]));
+        cache.close();
+        runQueued();
+        assertFalse(isCached(id));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void ownDirectoryIsRemovedOnClose() throws IOException {
+        Path own = Files.createTempDirectory("attachment-cache-own");
+        AttachmentCache temporary = new AttachmentCache(own, 400, queued::add, true);
+        temporary.fill(new ObjectId(), 10, () -> new ByteArrayInputStream(new byte[10]));
+        runQueued();
+        temporary.close();
+        assertFalse(Files.exists(own));
+    }
+
+    private ObjectId filled(int length) {
+        ObjectId id = new ObjectId();
+        cache.fill(id, length, () -> new ByteArrayInputStream(new byte[length]));
+        runQueued();
+        return id;
+    }
+
+    private boolean isCached(ObjectId id) throws IOException {
+        try (FileChannel channel = cache.open(id)) {
+            return channel != null;
+        }
+    }
+
+    private void runQueued() {
+        for (Runnable copy : queued) {
+            copy.run();
+        }
+        queued.clear();
+    }
+}
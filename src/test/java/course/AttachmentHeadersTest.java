@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2008 - 2013 10gen, Inc. <http://10gen.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package course;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AttachmentHeadersTest {
+
+    @Test
+    public void noRangeServesTheWholeFile() {
+        assertNull(AttachmentHeaders.parseRange(null, 100));
+    }
+
+    @Test
+    public void closedRange() {
+        assertArrayEquals(new long[]{0, 9}, AttachmentHeaders.parseRange("bytes=0-9", 100));
+    }
+
+    @Test
+    public void openRangeRunsToTheEnd() {
+        assertArrayEquals(new long[]{90, 99}, AttachmentHeaders.parseRange("bytes=90-", 100));
+    }
+
+    @Test
+    public void rangeEndIsClampedToTheFile() {
+        assertArrayEquals(new long[]{50, 99}, AttachmentHeaders.parseRange("bytes=50-1000", 100));
+    }
+
+    @Test
+    public void suffixRange() {
+        assertArrayEquals(new long[]{80, 99}, AttachmentHeaders.parseRange("bytes=-20", 100));
+        assertArrayEquals(new long[]{0, 99}, AttachmentHeaders.parseRange("bytes=-500", 100));
+    }
+
+    @Test
+    public void rangePastTheEndIsUnsatisfiable() {
+        assertEquals(0, AttachmentHeaders.parseRange("bytes=100-", 100).length);
+        assertEquals(0, AttachmentHeaders.parseRange("bytes=-0", 100).length);
+        assertEquals(0, AttachmentHeaders.parseRange("bytes=-10", 0).length);
+    }
+
+    @Test
+    public void unsupportedRangesAreIgnored() {
+        assertNull(AttachmentHeaders.parseRange("bytes=0-9,20-29", 100));
+        assertNull(AttachmentHeaders.parseRange("bytes=9-0", 100));
+        assertNull(AttachmentHeaders.parseRange("bytes=a-b", 100));
+        assertNull(AttachmentHeaders.parseRange("items=0-9", 100));
+        assertNull(AttachmentHeaders.parseRange("bytes=--5", 100));
+    }
+
+    @Test
+    public void onlyRasterImagesAreInline() {
+        assertTrue(AttachmentHeaders.isInlineType("image/png"));
+        assertTrue(AttachmentHeaders.isInlineType("IMAGE/JPEG; charset=binary"));
+        assertFalse(AttachmentHeaders.isInlineType("image/svg+xml"));
+        assertFalse(AttachmentHeaders.isInlineType("text/html"));
+        assertFalse(AttachmentHeaders.isInlineType(null));
+    }
+
+    @Test
+    public void dispositionKeepsTheOriginalName() {
+        assertEquals("attachment; filename=\"a&b r_sum_.pdf\"; filename*=UTF-8''a&b%20r%C3%A9sum%C3%A9.pdf",
+                AttachmentHeaders.attachmentDisposition("a&b r\u00e9sum\u00e9.pdf"));
+        assertEquals("attachment; filename=\"_x*.txt\"; filename*=UTF-8''%22x%2A.txt",
+                AttachmentHeaders.attachmentDisposition("\"x*.txt"));
+    }
+}
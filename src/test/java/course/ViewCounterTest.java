@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2008 - 2013 10gen, Inc. <http://10gen.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package course;
+
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ViewCounterTest {
+    // long enough that only the flushes a test makes itself ever run
+    private static final long FLUSH_INTERVAL = 60 * 60 * 1000;
+
+    private final FakePosts posts = new FakePosts();
+    private final List<ViewCounter> counters = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        // each counter runs its own flush thread
+        for (ViewCounter counter : counters) {
+            counter.close();
+        }
+    }
+
+    @Test
+    public void viewsAreWrittenOnce() {
+        ViewCounter counter = counter(FLUSH_INTERVAL, 10);
+        record(counter, "a", 3);
+        counter.flush();
+        counter.flush();
+        assertEquals(Long.valueOf(3), posts.views.get("a"));
+    }
+
+    @Test
+    public void onlyFailedUpdatesAreRetried() {
+        ViewCounter counter = counter(FLUSH_INTERVAL, 10);
+        record(counter, "a", 1);
+        record(counter, "b", 2);
+        posts.failing.add("b");
+        counter.flush();
+        assertEquals(Long.valueOf(1), posts.views.get("a"));
+
+        posts.failing.clear();
+        counter.flush();
+        assertEquals(Long.valueOf(1), posts.views.get("a"));
+        assertEquals(Long.valueOf(2), posts.views.get("b"));
+    }
+
+    @Test
+    public void viewsSurviveAShortOutage() {
+        ViewCounter counter = counter(FLUSH_INTERVAL, 10);
+        record(counter, "a", 2);
+        posts.outage = true;
+        counter.flush();
+        counter.flush();
+
+        posts.outage = false;
+        counter.flush();
+        assertEquals(Long.valueOf(2), posts.views.get("a"));
+    }
+
+    @Test
+    public void viewsSurviveALongOutage() {
+        ViewCounter counter = counter(FLUSH_INTERVAL, 10);
+        record(counter, "a", 2);
+        posts.outage = true;
+        for (int i = 0; i < 50; i++) {
+            counter.flush();
+            record(counter, "a", 1);
+        }
+
+        posts.outage = false;
+        counter.flush();
+        assertEquals(Long.valueOf(52), posts.views.get("a"));
+    }
+
+    @Test
+    public void mostViewedPostsComeFirst() {
+        ViewCounter counter = counter(FLUSH_INTERVAL, 2);
+        record(counter, "a", 1);
+        record(counter, "b", 3);
+        record(counter, "c", 2);
+        counter.flush();
+        assertEquals(Arrays.asList("b", "c"), counter.getPopularPermalinks());
+    }
+
+    @Test
+    public void oldViewsDecay() throws InterruptedException {
+        ViewCounter counter = counter(1, 2);
+        record(counter, "a", 100);
+        counter.flush();
+        Thread.sleep(50);
+        record(counter, "b", 1);
+        counter.flush();
+        assertEquals(Arrays.asList("b", "a"), counter.getPopularPermalinks());
+    }
+
+    @Test
+    public void scoresAreStoredWithTheViews() {
+        ViewCounter counter = counter(FLUSH_INTERVAL, 10);
+        record(counter, "a", 3);
+        counter.flush();
+        assertEquals(3, posts.popularity.get("a"), 0.01);
+        record(counter, "a", 2);
+        counter.flush();
+        assertEquals(5, posts.popularity.get("a"), 0.01);
+    }
+
+    @Test
+    public void rankingIsSeededFromStoredScores() {
+        long now = System.currentTimeMillis();
+        posts.stored.add(new Document("permalink", "a").append("popularity", 7.0)
+                .append("popularityAt", new Date(now)));
+        posts.stored.add(new Document("permalink", "b").append("popularity", 5.0)
+                .append("popularityAt", new Date(now)));
+        // a big score from three half-lives ago is now worth an eighth of it
+        posts.stored.add(new Document("permalink", "c").append("popularity", 48.0)
+                .append("popularityAt", new Date(now - 3 * FLUSH_INTERVAL)));
+        ViewCounter counter = counter(FLUSH_INTERVAL, 10);
+        assertEquals(Arrays.asList("a", "c", "b"), counter.getPopularPermalinks());
+
+        record(counter, "b", 3);
+        counter.flush();
+        assertEquals(Arrays.asList("b", "a", "c"), counter.getPopularPermalinks());
+        assertEquals(Long.valueOf(3), posts.views.get("b"));
+        assertEquals(8, posts.popularity.get("b"), 0.01);
+    }
+
+    @Test
+    public void emptyRankingIsAllowed() {
+        ViewCounter counter = counter(FLUSH_INTERVAL, 0);
+        record(counter, "a", 1);
+        counter.flush();
+        assertTrue(counter.getPopularPermalinks().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void halfLifeMustBePositive() {
+        new ViewCounter(posts, FLUSH_INTERVAL, 0, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void flushIntervalMustBePositive() {
+        new ViewCounter(posts, 0, FLUSH_INTERVAL, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void popularSizeMustNotBeNegative() {
+        new ViewCounter(posts, FLUSH_INTERVAL, FLUSH_INTERVAL, -1);
+    }
+
+    private ViewCounter counter(long halfLifeMillis, int popularSize) {
+        ViewCounter counter = new ViewCounter(posts, FLUSH_INTERVAL, halfLifeMillis, popularSize);
+        counters.add(counter);
+        return counter;
+    }
+
+    private static void record(ViewCounter counter, String permalink, int views) {
+        for (int i = 0; i < views; i++) {
+            counter.recordView(permalink);
+        }
+    }
+
+    // keeps the applied increments in memory and can fail some or all of them
+    private static class FakePosts extends BlogPostDAO {
+        private final Map<String, Long> views = new HashMap<>();
+        private final Map<String, Double> popularity = new HashMap<>();
+        private final Set<String> failing = new HashSet<>();
+        private final List<Document> stored = new ArrayList<>();
+        private boolean outage;
+
+        FakePosts() {
+            super((MongoCollection<Document>) null);
+        }
+
+        @Override
+        public Set<String> incrementViews(Map<String, Long> increments, Map<String, Double> scores, Date at) {
+            if (outage) {
+                throw new IllegalStateException("no server");
+            }
+            Set<String> failed = new HashSet<>();
+            for (Map.Entry<String, Long> increment : increments.entrySet()) {
+                if (failing.contains(increment.getKey())) {
+                    failed.add(increment.getKey());
+                } else {
+                    views.merge(increment.getKey(), increment.getValue(), Long::sum);
+                    popularity.put(increment.getKey(), scores.get(increment.getKey()));
+                }
+            }
+            return failed;
+        }
+
+        @Override
+        public List<Document> findPopularSince(Date since) {
+            return stored;
+        }
+    }
+}